@@ -0,0 +1,227 @@
+//package sjdb;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cache an optimised plan together with the catalogue statistics it depended on
+ * (T(R) of every scanned relation and V(R, attr) of their attributes).
+ * When these statistics drift by more than threshold, replan
+ * and swap the refreshed plan in atomically.
+ * Use these steps:
+ * Step1. Snapshot statistics of every relation scanned by the canonical plan
+ * Step2. Compare snapshot with catalogue, find drifted relations
+ * Step3. Re-resolve drifted relations from catalogue, re-optimise the whole
+ * canonical plan (reorder depends on the cost of every subTree), swap plan
+ */
+public class PlanCache {
+    private final Catalogue catalogue;
+
+    // Relative change of one statistic that makes the plan stale (0.2 = 20%)
+    private final double threshold;
+
+    // Canonical plan, optimised plan and statistics, always published together
+    private final AtomicReference<Snapshot> current = new AtomicReference<>();
+
+    /**
+     * Snapshot<Operator canonical, Operator plan, Map stats>
+     * Immutable, so a reader never sees a plan with the statistics of another one
+     */
+    private static final class Snapshot {
+        private final Operator canonical;// canonical plan the plan is optimised from
+        private final Operator plan;// optimised plan
+        private final Map<String, Integer> stats;// "rel" -> T(rel), "rel.attr" -> V(rel, attr)
+
+        public Snapshot(Operator canonical, Operator plan, Map<String, Integer> stats) {
+            this.canonical = canonical;
+            this.plan = plan;
+            this.stats = Collections.unmodifiableMap(stats);
+        }
+    }
+
+    public PlanCache(Catalogue catalogue, Operator canonical, double threshold) {
+        // !(threshold >= 0) also reject NaN
+        if (!(threshold >= 0)) {
+            throw new IllegalArgumentException("threshold must be >= 0: " + threshold);
+        }
+        this.catalogue = catalogue;
+        this.threshold = threshold;
+        current.set(replan(canonical));
+    }
+
+    /**
+     * Return the current optimised plan
+     */
+    public Operator getPlan() {
+        return current.get().plan;
+    }
+
+    /**
+     * Return true if any statistic the cached plan read has drifted more than threshold,
+     * or a relation it scans has been dropped from the catalogue
+     */
+    public boolean isStale() {
+        return !findDrifted(current.get()).isEmpty();
+    }
+
+    /**
+     * Replan if stale, swap the refreshed plan in
+     * Nothing is published unless every step succeeded
+     *
+     * @return boolean: true if plan has been replaced
+     * @throws DatabaseException if a scanned relation has been dropped from the catalogue
+     */
+    public synchronized boolean refresh() throws DatabaseException {
+        Snapshot old = current.get();
+
+        // Step2. find relations whose statistics drifted
+        Set<String> drifted = findDrifted(old);
+        if (drifted.isEmpty()) {
+            return false;
+        }
+
+        // Step3. build everything in locals, publish in one step
+        Operator canonical = rebuild(old.canonical, drifted);
+        current.set(replan(canonical));
+        return true;
+    }
+
+    /**
+     * Run refresh() on executor, getPlan() keeps returning the old plan until the swap
+     * Failure (e.g. dropped relation) completes the future exceptionally
+     */
+    public CompletableFuture<Boolean> refreshInBackground(Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return refresh();
+            } catch (DatabaseException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Optimise canonical plan, record the statistics it read
+     *
+     * @return Snapshot: not yet published
+     */
+    private Snapshot replan(Operator canonical) {
+        // Optimiser need output relation of canonical plan
+        Estimator estimator = new Estimator();
+        canonical.accept(estimator);
+
+        // Optimiser keeps state between visit() calls, use a new one per replan
+        Operator optimised = new Optimiser(catalogue).optimise(canonical);
+        return new Snapshot(canonical, optimised, snapshot(canonical));
+    }
+
+    /**
+     * Step1. Snapshot T(R) and V(R, attr) of every relation scanned by op
+     *
+     * @return Map: "rel" -> T(rel), "rel.attr" -> V(rel, attr)
+     */
+    Map<String, Integer> snapshot(Operator op) {
+        Map<String, Integer> result = new HashMap<>();
+        for (NamedRelation relation : findScanRelations(op, new ArrayList<>())) {
+            result.put(relation.getName(), relation.getTupleCount());
+            for (Attribute attr : relation.getAttributes()) {
+                result.put(relation.getName() + "." + attr.getName(), attr.getValueCount());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Step2. Compare snapshot with the catalogue
+     *
+     * @return Set: name of relations with at least one drifted statistic (or dropped)
+     */
+    Set<String> findDrifted(Snapshot snapshot) {
+        Set<String> drifted = new HashSet<>();
+        for (NamedRelation old : findScanRelations(snapshot.canonical, new ArrayList<>())) {
+            NamedRelation relation;
+            try {
+                relation = catalogue.getRelation(old.getName());
+            } catch (DatabaseException e) {
+                // relation dropped from catalogue, plan is stale, refresh() reports it
+                drifted.add(old.getName());
+                continue;
+            }
+            if (isDrifted(snapshot.stats.get(old.getName()), relation.getTupleCount())) {
+                drifted.add(old.getName());
+                continue;
+            }
+            for (Attribute attr : relation.getAttributes()) {
+                if (isDrifted(snapshot.stats.get(old.getName() + "." + attr.getName()),
+                        attr.getValueCount())) {
+                    drifted.add(old.getName());
+                    break;
+                }
+            }
+        }
+        return drifted;
+    }
+
+    /**
+     * Return if value changed more than threshold relative to old
+     * (statistic not in snapshot counts as drifted)
+     */
+    boolean isDrifted(Integer old, int value) {
+        if (old == null) {
+            return true;
+        }
+        // max(old, 1) prevent devision by zero on empty relation
+        return Math.abs(value - old) > threshold * Math.max(old, 1);
+    }
+
+    /**
+     * Collect relations of all scan in op
+     * Help function for Step1, Step2
+     */
+    List<NamedRelation> findScanRelations(Operator op, List<NamedRelation> relations) {
+        // (Recursion)
+        if (op instanceof Scan) {
+            relations.add((NamedRelation) ((Scan) op).getRelation());
+        } else if (op instanceof UnaryOperator) {
+            findScanRelations(((UnaryOperator) op).getInput(), relations);
+        } else if (op instanceof BinaryOperator) {
+            findScanRelations(((BinaryOperator) op).getLeft(), relations);
+            findScanRelations(((BinaryOperator) op).getRight(), relations);
+        }
+        return relations;
+    }
+
+    /**
+     * Copy op, scans of drifted relations re-resolve their relation from catalogue
+     * Help function for Step3
+     *
+     * @return Operator: rootOp of new tree
+     * @throws DatabaseException if a drifted relation has been dropped from the catalogue
+     */
+    Operator rebuild(Operator op, Set<String> drifted) throws DatabaseException {
+        // (Recursion)
+        if (op instanceof Scan) {
+            NamedRelation relation = (NamedRelation) ((Scan) op).getRelation();
+            if (drifted.contains(relation.getName())) {
+                relation = catalogue.getRelation(relation.getName());
+            }
+            return new Scan(relation);
+        } else if (op instanceof Select) {
+            return new Select(rebuild(((Select) op).getInput(), drifted),
+                    ((Select) op).getPredicate());
+        } else if (op instanceof Project) {
+            return new Project(rebuild(((Project) op).getInput(), drifted),
+                    ((Project) op).getAttributes());
+        } else if (op instanceof Join) {
+            return new Join(rebuild(((Join) op).getLeft(), drifted),
+                    rebuild(((Join) op).getRight(), drifted), ((Join) op).getPredicate());
+        } else if (op instanceof Product) {
+            return new Product(rebuild(((Product) op).getLeft(), drifted),
+                    rebuild(((Product) op).getRight(), drifted));
+        }
+        return op;
+    }
+}